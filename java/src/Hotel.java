@@ -21,7 +21,19 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.io.PrintWriter;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.ArrayList;
 import java.lang.Math;
 
@@ -295,6 +307,8 @@ public class Hotel {
                 System.out.println("8. View 5 regular Customers");
                 System.out.println("9. Place room repair Request to a company");
                 System.out.println("10. View room repair Requests history");
+                System.out.println("11. Export occupancy and revenue analytics");
+                System.out.println("12. Schedule batch of room repair Requests");
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
@@ -309,6 +323,8 @@ public class Hotel {
                    case 8: viewRegularCustomers(esql); break;
                    case 9: placeRoomRepairRequests(esql); break;
                    case 10: viewRoomRepairHistory(esql); break;
+                   case 11: exportOccupancyAnalytics(esql); break;
+                   case 12: scheduleRoomRepairRequests(esql); break;
                    case 20: usermenu = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
@@ -672,4 +688,360 @@ catch(Exception e){
 
    }
 
+   // number of rows pulled from the server-side cursor per round trip
+   static final int ANALYTICS_FETCH_SIZE = 10000;
+
+   /*
+    * Exports occupancy and revenue per room and month, plus a per hotel
+    * monthly rollup, as two CSV files. The booking/room join is grouped by
+    * Postgres and read back through a server-side cursor in fixed size
+    * chunks, so memory stays bounded by one chunk plus one hotel's months.
+    **/
+   public static void exportOccupancyAnalytics(Hotel esql) {
+      PrintWriter roomOut = null;
+      PrintWriter hotelOut = null;
+      File roomFile = null;
+      File hotelFile = null;
+      Statement stmt = null;
+      boolean autoCommit = true;
+      boolean exported = false;
+      try{
+         System.out.print("Please enter the HotelID to export (or 'all' for every hotel):");
+         String valhotelID = in.readLine().trim();
+
+         System.out.print("Please enter the output file prefix:");
+         String prefix = in.readLine().trim();
+
+         String filter = "";
+         if (!valhotelID.equalsIgnoreCase("all"))
+            filter = " WHERE RB.hotelID = " + Integer.parseInt(valhotelID);
+
+         String query =
+            "SELECT RB.hotelID, RB.roomNumber, " +
+            "CAST(EXTRACT(YEAR FROM RB.bookingDate) AS integer), " +
+            "CAST(EXTRACT(MONTH FROM RB.bookingDate) AS integer), " +
+            "COUNT(*), COUNT(DISTINCT RB.bookingDate), SUM(R.price), MAX(RC.roomCount) " +
+            "FROM RoomBookings RB " +
+            "JOIN Rooms R ON R.hotelID = RB.hotelID AND R.roomNumber = RB.roomNumber " +
+            "JOIN (SELECT hotelID, COUNT(*) AS roomCount FROM Rooms GROUP BY hotelID) RC ON RC.hotelID = RB.hotelID" +
+            filter +
+            " GROUP BY 1, 2, 3, 4 ORDER BY 1, 2, 3, 4";
+
+         roomFile = new File(prefix + "_rooms.csv");
+         hotelFile = new File(prefix + "_hotels.csv");
+         roomOut = new PrintWriter(new BufferedWriter(new FileWriter(roomFile)));
+         hotelOut = new PrintWriter(new BufferedWriter(new FileWriter(hotelFile)));
+         roomOut.println("hotelID,roomNumber,month,bookings,nightsBooked,daysInMonth,occupancyRate,revenue");
+         hotelOut.println("hotelID,month,rooms,bookings,nightsBooked,occupancyRate,revenue");
+
+         // cursors only live inside a transaction
+         autoCommit = esql._connection.getAutoCommit();
+         esql._connection.setAutoCommit(false);
+         stmt = esql._connection.createStatement();
+         stmt.executeUpdate("DECLARE analytics_cursor NO SCROLL CURSOR FOR " + query);
+
+         // months of the hotel currently being streamed, keyed by year * 12 + month - 1
+         TreeMap<Integer, long[]> hotelMonths = new TreeMap<Integer, long[]>();
+         // always Gregorian: the default locale may pick a Buddhist or Japanese calendar
+         Calendar cal = new GregorianCalendar();
+         int currentHotel = -1;
+         int currentRoomCount = 0;
+         int hotels = 0;
+         long rows = 0;
+
+         while (true) {
+            ResultSet rs = stmt.executeQuery("FETCH FORWARD " + ANALYTICS_FETCH_SIZE + " FROM analytics_cursor");
+            int fetched = 0;
+            while (rs.next()){
+               int hotelID = rs.getInt(1);
+               int roomNumber = rs.getInt(2);
+               int year = rs.getInt(3);
+               int month = rs.getInt(4);
+               long bookings = rs.getLong(5);
+               long nights = rs.getLong(6);
+               long revenue = rs.getLong(7);
+
+               if (hotelID != currentHotel){
+                  writeHotelMonths(hotelOut, currentHotel, currentRoomCount, hotelMonths, cal);
+                  hotelMonths.clear();
+                  currentHotel = hotelID;
+                  currentRoomCount = rs.getInt(8);
+                  ++hotels;
+               }
+
+               cal.clear();
+               cal.set(year, month - 1, 1);
+               int days = cal.getActualMaximum(Calendar.DAY_OF_MONTH);
+               roomOut.printf(Locale.ROOT, "%d,%d,%04d-%02d,%d,%d,%d,%.4f,%d%n", hotelID, roomNumber, year, month,
+                              bookings, nights, days, (double) nights / days, revenue);
+
+               Integer key = year * 12 + month - 1;
+               long[] totals = hotelMonths.get(key);
+               if (totals == null){
+                  totals = new long[3];
+                  hotelMonths.put(key, totals);
+               }
+               totals[0] += bookings;
+               totals[1] += nights;
+               totals[2] += revenue;
+               ++fetched;
+            }//end while
+            rs.close();
+            rows += fetched;
+            if (fetched < ANALYTICS_FETCH_SIZE) break;
+         }//end while
+         writeHotelMonths(hotelOut, currentHotel, currentRoomCount, hotelMonths, cal);
+
+         stmt.executeUpdate("CLOSE analytics_cursor");
+         esql._connection.commit();
+
+         // PrintWriter swallows IO errors, so a full disk only shows up here
+         if (roomOut.checkError() || hotelOut.checkError())
+            throw new java.io.IOException("Unable to write the analytics files");
+         exported = true;
+
+         System.out.println("Exported " + rows + " room/month rows for " + hotels + " hotel(s) to "
+                            + prefix + "_rooms.csv and " + prefix + "_hotels.csv");
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+         try{
+            esql._connection.rollback();
+         }catch(SQLException ex){
+            // ignored.
+         }
+      }finally{
+         try{
+            if (stmt != null) stmt.close();
+            esql._connection.setAutoCommit(autoCommit);
+         }catch(SQLException e){
+            // ignored.
+         }
+         if (roomOut != null) roomOut.close();
+         if (hotelOut != null) hotelOut.close();
+         // never leave a partial export behind that could pass for a complete one
+         if (!exported){
+            if (roomOut != null) roomFile.delete();
+            if (hotelOut != null) hotelFile.delete();
+         }
+      }
+   }//end exportOccupancyAnalytics
+
+   /*
+    * Writes the monthly rollup of one hotel. Occupancy is booked room nights
+    * over every room of the hotel being available each day of the month.
+    **/
+   static void writeHotelMonths(PrintWriter out, int hotelID, int roomCount, TreeMap<Integer, long[]> months, Calendar cal) {
+      for (Map.Entry<Integer, long[]> entry : months.entrySet()){
+         int year = entry.getKey() / 12;
+         int month = entry.getKey() % 12 + 1;
+         long[] totals = entry.getValue();
+         cal.clear();
+         cal.set(year, month - 1, 1);
+         long capacity = (long) roomCount * cal.getActualMaximum(Calendar.DAY_OF_MONTH);
+         out.printf(Locale.ROOT, "%d,%04d-%02d,%d,%d,%d,%.4f,%d%n", hotelID, year, month, roomCount,
+                    totals[0], totals[1], (double) totals[1] / capacity, totals[2]);
+      }
+   }//end writeHotelMonths
+
+   // longest window the repair scheduler will plan over, about ten years
+   static final int MAX_REPAIR_HORIZON = 3660;
+
+   /*
+    * Plans a file of pending repair requests (one "hotelID,roomNumber" per
+    * line) in one batch. Each request gets the earliest day in the window on
+    * which its room is neither booked nor already under repair, and the
+    * least loaded maintenance company that is still under its daily
+    * capacity. Bookings and existing repairs are loaded once up front, under
+    * table locks, in the same transaction that inserts the schedule.
+    **/
+   public static void scheduleRoomRepairRequests(Hotel esql) {
+      Statement stmt = null;
+      boolean autoCommit = true;
+      boolean inTransaction = false;
+      try{
+         System.out.print("Please enter your Manager ID:");
+         int managerID = Integer.parseInt(in.readLine().trim());
+
+         System.out.print("Please enter the file of pending repair requests (hotelID,roomNumber per line):");
+         String fileName = in.readLine().trim();
+
+         System.out.print("Please enter the earliest Repair Date (YYYY-MM-DD):");
+         String startDate = java.sql.Date.valueOf(in.readLine().trim()).toString();
+
+         System.out.print("Please enter the number of days to schedule over:");
+         int horizon = Integer.parseInt(in.readLine().trim());
+
+         System.out.print("Please enter the maximum repairs per company per day:");
+         int capacity = Integer.parseInt(in.readLine().trim());
+
+         if (horizon <= 0 || capacity <= 0 || horizon > MAX_REPAIR_HORIZON){
+            System.out.println("Number of days and capacity must be positive, and number of days at most " + MAX_REPAIR_HORIZON + "!");
+            return;
+         }
+
+         // pending requests, and the days each requested room is unavailable
+         List<int[]> requests = new ArrayList<int[]>();
+         List<String> skipped = new ArrayList<String>();
+         HashMap<Long, BitSet> busyDays = new HashMap<Long, BitSet>();
+         TreeSet<Integer> hotelIDs = new TreeSet<Integer>();
+         BufferedReader reader = new BufferedReader(new FileReader(fileName));
+         try{
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null){
+               ++lineNumber;
+               if (line.trim().length() == 0) continue;
+               String[] fields = line.trim().split(",");
+               int hotelID, roomNumber;
+               try{
+                  if (fields.length != 2) throw new NumberFormatException();
+                  hotelID = Integer.parseInt(fields[0].trim());
+                  roomNumber = Integer.parseInt(fields[1].trim());
+               }catch(NumberFormatException e){
+                  if (lineNumber == 1 && line.trim().matches("(?i)hotelID\\s*,\\s*roomNumber")) continue; // header
+                  skipped.add("line " + lineNumber + " is not hotelID,roomNumber: " + line.trim());
+                  continue;
+               }
+               requests.add(new int[]{hotelID, roomNumber});
+               if (!busyDays.containsKey(roomKey(hotelID, roomNumber)))
+                  busyDays.put(roomKey(hotelID, roomNumber), new BitSet(horizon));
+               hotelIDs.add(hotelID);
+            }
+         }finally{
+            reader.close();
+         }
+         if (requests.isEmpty()){
+            System.out.println("No repair requests found in " + fileName);
+            for (String reason : skipped)
+               System.out.println("\tSkipped " + reason);
+            return;
+         }
+         String hotelList = hotelIDs.toString().replaceAll("[\\[\\] ]", "");
+         String window = String.format("BETWEEN DATE '%s' AND DATE '%s' + %d", startDate, startDate, horizon - 1);
+
+         // plan and insert against the same snapshot: block new repairs and bookings until commit
+         autoCommit = esql._connection.getAutoCommit();
+         esql._connection.setAutoCommit(false);
+         inTransaction = true;
+         stmt = esql._connection.createStatement();
+         stmt.executeUpdate("LOCK TABLE RoomRepairs IN SHARE ROW EXCLUSIVE MODE");
+         stmt.executeUpdate("LOCK TABLE RoomBookings IN SHARE MODE");
+
+         if (esql.executeQuery("SELECT userID FROM Users WHERE userID = " + managerID) == 0){
+            System.out.println("Unknown Manager ID " + managerID + "!");
+            return;
+         }
+
+         // drop requests for rooms that do not exist instead of failing the whole batch on the foreign key
+         HashSet<Long> knownRooms = new HashSet<Long>();
+         ResultSet rs = stmt.executeQuery("SELECT hotelID, roomNumber FROM Rooms WHERE hotelID IN (" + hotelList + ")");
+         while (rs.next())
+            knownRooms.add(roomKey(rs.getInt(1), rs.getInt(2)));
+         rs.close();
+         List<int[]> validRequests = new ArrayList<int[]>();
+         for (int[] request : requests){
+            if (knownRooms.contains(roomKey(request[0], request[1])))
+               validRequests.add(request);
+            else
+               skipped.add("hotel " + request[0] + " room " + request[1] + ": no such room");
+         }
+
+         List<List<String>> companyRows = esql.executeQueryAndReturnResult("SELECT companyID FROM MaintenanceCompany ORDER BY companyID");
+         if (companyRows.isEmpty()){
+            System.out.println("There are no maintenance companies to assign!");
+            return;
+         }
+         int[] companies = new int[companyRows.size()];
+         HashMap<Integer, Integer> companyIndex = new HashMap<Integer, Integer>();
+         for (int i = 0; i < companies.length; ++i){
+            companies[i] = Integer.parseInt(companyRows.get(i).get(0).trim());
+            companyIndex.put(companies[i], i);
+         }
+
+         // repairs already booked per company and day, and companies at capacity per day
+         int[][] load = new int[companies.length][horizon];
+         int[] fullCompanies = new int[horizon];
+         rs = stmt.executeQuery(
+            "SELECT companyID, repairDate - DATE '" + startDate + "', COUNT(*) FROM RoomRepairs WHERE repairDate " + window +
+            " GROUP BY 1, 2");
+         while (rs.next()){
+            Integer c = companyIndex.get(rs.getInt(1));
+            int day = rs.getInt(2);
+            load[c][day] += rs.getInt(3);
+         }
+         rs.close();
+         // existing repairs were never held to a limit, so count full companies rather than summing loads
+         for (int c = 0; c < companies.length; ++c)
+            for (int day = 0; day < horizon; ++day)
+               if (load[c][day] >= capacity) ++fullCompanies[day];
+
+         // rooms are unavailable on days they are booked or already being repaired
+         rs = stmt.executeQuery(
+            "SELECT hotelID, roomNumber, bookingDate - DATE '" + startDate + "' FROM RoomBookings " +
+            "WHERE hotelID IN (" + hotelList + ") AND bookingDate " + window +
+            " UNION ALL SELECT hotelID, roomNumber, repairDate - DATE '" + startDate + "' FROM RoomRepairs " +
+            "WHERE hotelID IN (" + hotelList + ") AND repairDate " + window);
+         while (rs.next()){
+            BitSet busy = busyDays.get(roomKey(rs.getInt(1), rs.getInt(2)));
+            if (busy != null) busy.set(rs.getInt(3));
+         }
+         rs.close();
+
+         int firstOpenDay = 0;
+         int scheduled = 0;
+         List<int[]> unscheduled = new ArrayList<int[]>();
+         for (int[] request : validRequests){
+            while (firstOpenDay < horizon && fullCompanies[firstOpenDay] == companies.length) ++firstOpenDay;
+            BitSet busy = busyDays.get(roomKey(request[0], request[1]));
+            int day = busy.nextClearBit(firstOpenDay);
+            int company = -1;
+            for (; day < horizon; day = busy.nextClearBit(day + 1)){
+               for (int c = 0; c < companies.length; ++c)
+                  if (load[c][day] < capacity && (company < 0 || load[c][day] < load[company][day]))
+                     company = c;
+               if (company >= 0) break;
+            }
+            if (company < 0){
+               unscheduled.add(request);
+               continue;
+            }
+            busy.set(day);
+            if (++load[company][day] == capacity) ++fullCompanies[day];
+            stmt.addBatch(String.format(
+               "INSERT INTO RoomRepairs (companyID, hotelID, roomNumber, repairDate) VALUES (%d, %d, %d, DATE '%s' + %d)",
+               companies[company], request[0], request[1], startDate, day));
+            stmt.addBatch(String.format(
+               "INSERT INTO RoomRepairRequests (managerID, repairID) VALUES (%d, currval('roomrepairs_repairid_seq'))",
+               managerID));
+            ++scheduled;
+         }
+
+         stmt.executeBatch();
+         esql._connection.commit();
+         inTransaction = false;
+
+         System.out.println("Scheduled " + scheduled + " of " + requests.size() + " room repair requests.");
+         for (int[] request : unscheduled)
+            System.out.println("\tNo free day or company for hotel " + request[0] + " room " + request[1]);
+         for (String reason : skipped)
+            System.out.println("\tSkipped " + reason);
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }finally{
+         try{
+            if (stmt != null) stmt.close();
+            // also releases the table locks when we returned early
+            if (inTransaction) esql._connection.rollback();
+            esql._connection.setAutoCommit(autoCommit);
+         }catch(SQLException e){
+            // ignored.
+         }
+      }
+   }//end scheduleRoomRepairRequests
+
+   // packs a (hotelID, roomNumber) pair into a single map key
+   static long roomKey(int hotelID, int roomNumber) {
+      return ((long) hotelID << 32) | (roomNumber & 0xffffffffL);
+   }//end roomKey
+
 }//end Hotel
@@ -0,0 +1,4 @@
+--Indexes used by the repair scheduler to load a hotel's bookings and repairs over a date window.
+CREATE INDEX roomBookings_hotel_date_idx ON RoomBookings(hotelID, bookingDate);
+CREATE INDEX roomRepairs_hotel_date_idx ON RoomRepairs(hotelID, repairDate);
+CREATE INDEX roomRepairs_date_idx ON RoomRepairs(repairDate);